@@ -2,8 +2,11 @@ package edu.nu.owaspapivulnlab;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+// Drives ShardedAccountStore.recoverInDoubt in sharded mode
+@EnableScheduling
 public class OwaspApiVulnLabApplication {
     public static void main(String[] args) {
         SpringApplication.run(OwaspApiVulnLabApplication.class, args);
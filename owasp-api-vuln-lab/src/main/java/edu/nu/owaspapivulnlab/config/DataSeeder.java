@@ -5,13 +5,13 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import edu.nu.owaspapivulnlab.model.Account;
 import edu.nu.owaspapivulnlab.model.AppUser;
-import edu.nu.owaspapivulnlab.repo.AccountRepository;
+import edu.nu.owaspapivulnlab.repo.AccountStore;
 import edu.nu.owaspapivulnlab.repo.AppUserRepository;
 
 @Configuration
 public class DataSeeder {
     @Bean
-    CommandLineRunner seed(AppUserRepository users, AccountRepository accounts) {
+    CommandLineRunner seed(AppUserRepository users, AccountStore accounts) {
         return args -> {
             if (users.count() == 0) {
                 AppUser u1 = users.save(AppUser.builder().username("alice").password("alice123").email("alice@cydea.tech").role("USER").isAdmin(false).build());
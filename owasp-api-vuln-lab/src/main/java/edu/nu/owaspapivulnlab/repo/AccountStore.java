@@ -0,0 +1,26 @@
+package edu.nu.owaspapivulnlab.repo;
+
+import edu.nu.owaspapivulnlab.model.Account;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Storage abstraction for accounts so controllers do not care whether accounts live
+ * in the single JPA datasource or are partitioned across shards by ownerUserId.
+ */
+public interface AccountStore {
+
+    Optional<Account> findById(Long id);
+
+    List<Account> findByOwnerUserId(Long ownerUserId);
+
+    Account save(Account account);
+
+    /**
+     * Atomically moves {@code amount} from one account to another.
+     * Throws {@link java.util.NoSuchElementException} if either account is missing and
+     * {@link IllegalStateException} if the source balance is insufficient.
+     */
+    void transfer(Long fromId, Long toId, double amount);
+}
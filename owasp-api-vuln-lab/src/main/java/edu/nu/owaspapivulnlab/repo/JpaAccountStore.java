@@ -0,0 +1,73 @@
+package edu.nu.owaspapivulnlab.repo;
+
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.LockModeType;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import edu.nu.owaspapivulnlab.model.Account;
+
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+
+// Default mode: every account lives in the main JPA datasource
+@Component
+@ConditionalOnProperty(name = "app.accounts.sharded", havingValue = "false", matchIfMissing = true)
+public class JpaAccountStore implements AccountStore {
+
+    private final AccountRepository accounts;
+    private final EntityManager em;
+
+    public JpaAccountStore(AccountRepository accounts, EntityManager em) {
+        this.accounts = accounts;
+        this.em = em;
+    }
+
+    @Override
+    public Optional<Account> findById(Long id) {
+        return accounts.findById(id);
+    }
+
+    @Override
+    public List<Account> findByOwnerUserId(Long ownerUserId) {
+        return accounts.findByOwnerUserId(ownerUserId);
+    }
+
+    @Override
+    public Account save(Account account) {
+        return accounts.save(account);
+    }
+
+    @Override
+    @Transactional
+    public void transfer(Long fromId, Long toId, double amount) {
+        if (fromId.equals(toId)) {
+            throw new IllegalArgumentException("Cannot transfer to the same account");
+        }
+        // Lock rows in ascending id order so concurrent opposite transfers cannot deadlock
+        Long first = Math.min(fromId, toId);
+        Long second = Math.max(fromId, toId);
+        Account a = lockFresh(first);
+        Account b = lockFresh(second);
+        Account from = a.getId().equals(fromId) ? a : b;
+        Account to = a.getId().equals(fromId) ? b : a;
+
+        if (from.getBalance() < amount) {
+            throw new IllegalStateException("Insufficient funds");
+        }
+        from.setBalance(from.getBalance() - amount);
+        to.setBalance(to.getBalance() + amount);
+    }
+
+    // The persistence context may already hold a copy loaded before the lock (open-in-view),
+    // so re-read the row under the lock instead of trusting the cached balance
+    private Account lockFresh(Long id) {
+        Account account = em.find(Account.class, id);
+        if (account == null) {
+            throw new NoSuchElementException("Account not found");
+        }
+        em.refresh(account, LockModeType.PESSIMISTIC_WRITE);
+        return account;
+    }
+}
@@ -0,0 +1,441 @@
+package edu.nu.owaspapivulnlab.repo;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.jdbc.UncategorizedSQLException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import edu.nu.owaspapivulnlab.model.Account;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Accounts partitioned across N independent H2 datasources by ownerUserId.
+ *
+ * An account lives on shard {@code ownerUserId mod N}. Each shard hands out ids
+ * {@code shard+1, shard+1+N, ...}, so {@code findById} routes with {@code (id-1) mod N}
+ * without a lookup table. The shard count therefore must not change while data exists.
+ *
+ * Transfers within one shard are a plain local transaction. A transfer across two shards
+ * uses two-phase commit with the lower shard as coordinator:
+ * <ol>
+ *   <li>Both rows are locked in ascending id order, so concurrent transfers cannot deadlock,
+ *       and both balances are updated.</li>
+ *   <li>The participant (higher) shard runs {@code PREPARE COMMIT}. Any failure up to here
+ *       rolls back both shards.</li>
+ *   <li>The coordinator commits its update together with a row in {@code tx_decision}.
+ *       That local commit is the commit point; from then on the transfer is never rolled back.</li>
+ *   <li>The participant runs {@code COMMIT TRANSACTION}, retried a few times.</li>
+ * </ol>
+ * If the participant still fails, its connection is evicted from the pool (H2 keeps a prepared
+ * transaction in doubt when its session closes) and {@link TransferInDoubtException} is thrown.
+ * If instead the coordinator commit fails and its outcome cannot be read back, the participant
+ * connection stays checked out: the transfer may still have to be rolled back, and H2 leaves
+ * the row locked when it rolls back a prepared transaction whose session is already closed.
+ * {@link #recoverInDoubt()} runs every {@code app.accounts.recovery-interval-ms} and settles
+ * such transactions: commit if the coordinator logged a decision, otherwise roll back.
+ *
+ * On startup every shard's {@code INFORMATION_SCHEMA.IN_DOUBT} is settled the same way, and
+ * decision rows are cleared only after all shards are settled. That makes the protocol
+ * crash-safe for file-backed shard URLs; the default {@code jdbc:h2:mem:} shards lose all
+ * state, prepared transactions included, when the JVM exits.
+ */
+@Component
+@ConditionalOnProperty(name = "app.accounts.sharded", havingValue = "true")
+public class ShardedAccountStore implements AccountStore, DisposableBean {
+
+    private static final String COLUMNS = "id, owner_user_id, iban, balance";
+
+    private static final RowMapper<Account> ROW = (rs, n) -> Account.builder()
+            .id(rs.getLong("id"))
+            .ownerUserId(rs.getObject("owner_user_id", Long.class))
+            .iban(rs.getString("iban"))
+            .balance(rs.getObject("balance", Double.class))
+            .build();
+
+    private static final int COMMIT_ATTEMPTS = 3;
+
+    private final List<HikariDataSource> dataSources = new ArrayList<>();
+    private final List<JdbcTemplate> shards = new ArrayList<>();
+
+    // Prepared participant transactions left for recoverInDoubt, by transaction name
+    private final Map<String, Pending> inDoubt = new ConcurrentHashMap<>();
+
+    // session is the participant's still open connection, or null once it was evicted
+    private record Pending(int coordinatorShard, int participantShard, Connection session) {
+    }
+
+    public ShardedAccountStore(@Value("${app.accounts.shard-count}") int shardCount,
+                               @Value("${app.accounts.shard-url}") String urlPattern) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("app.accounts.shard-count must be at least 1");
+        }
+        for (int i = 0; i < shardCount; i++) {
+            HikariDataSource ds = DataSourceBuilder.create()
+                    .type(HikariDataSource.class)
+                    // settling an in-doubt transaction does not invalidate H2's per-session result reuse
+                    .url(String.format(urlPattern, i) + ";OPTIMIZE_REUSE_RESULTS=FALSE")
+                    .username("sa")
+                    .password("")
+                    .build();
+            ds.setPoolName("account-shard-" + i);
+            JdbcTemplate jdbc = new JdbcTemplate(ds);
+            jdbc.execute("create table if not exists account ("
+                    + "id bigint generated by default as identity (start with " + (i + 1) + " increment by " + shardCount + ") primary key, "
+                    + "owner_user_id bigint, iban varchar(255), balance double precision)");
+            jdbc.execute("create index if not exists account_owner_idx on account(owner_user_id)");
+            jdbc.execute("create table if not exists tx_decision (name varchar(64) primary key)");
+            dataSources.add(ds);
+            shards.add(jdbc);
+        }
+        recoverAtStartup();
+    }
+
+    public int shardCount() {
+        return shards.size();
+    }
+
+    int shardOfOwner(Long ownerUserId) {
+        return Math.floorMod(ownerUserId, shards.size());
+    }
+
+    int shardOfId(Long id) {
+        return (int) Math.floorMod(id - 1, (long) shards.size());
+    }
+
+    @Override
+    public Optional<Account> findById(Long id) {
+        return shards.get(shardOfId(id))
+                .query("select " + COLUMNS + " from account where id = ?", ROW, id)
+                .stream().findFirst();
+    }
+
+    @Override
+    public List<Account> findByOwnerUserId(Long ownerUserId) {
+        return shards.get(shardOfOwner(ownerUserId))
+                .query("select " + COLUMNS + " from account where owner_user_id = ?", ROW, ownerUserId);
+    }
+
+    @Override
+    public Account save(Account account) {
+        if (account.getOwnerUserId() == null) {
+            throw new IllegalArgumentException("Account needs an ownerUserId to pick its shard");
+        }
+        int shard = shardOfOwner(account.getOwnerUserId());
+        JdbcTemplate jdbc = shards.get(shard);
+
+        if (account.getId() == null) {
+            KeyHolder keys = new GeneratedKeyHolder();
+            jdbc.update(con -> {
+                PreparedStatement ps = con.prepareStatement(
+                        "insert into account (owner_user_id, iban, balance) values (?, ?, ?)", new String[]{"ID"});
+                ps.setLong(1, account.getOwnerUserId());
+                ps.setString(2, account.getIban());
+                ps.setObject(3, account.getBalance(), Types.DOUBLE);
+                return ps;
+            }, keys);
+            account.setId(keys.getKey().longValue());
+            return account;
+        }
+
+        // Moving an account to another owner shard would break id based routing
+        if (shardOfId(account.getId()) != shard) {
+            throw new IllegalArgumentException("Account cannot change owner shard");
+        }
+        int updated = jdbc.update("update account set owner_user_id = ?, iban = ?, balance = ? where id = ?",
+                account.getOwnerUserId(), account.getIban(), account.getBalance(), account.getId());
+        if (updated == 0) {
+            throw new NoSuchElementException("Account not found");
+        }
+        return account;
+    }
+
+    @Override
+    public void transfer(Long fromId, Long toId, double amount) {
+        if (fromId.equals(toId)) {
+            throw new IllegalArgumentException("Cannot transfer to the same account");
+        }
+        // Connections keyed by shard index; the first entry is the coordinator
+        TreeMap<Integer, Connection> tx = new TreeMap<>();
+        String txName = "TX_" + UUID.randomUUID().toString().replace("-", "").toUpperCase();
+        Map<Long, Double> balances = new HashMap<>();
+        boolean prepared = false;
+        boolean decided = false;
+        try {
+            // Take pool connections in shard order, then row locks in id order, so neither can deadlock
+            for (int shard : new TreeSet<>(List.of(shardOfId(fromId), shardOfId(toId)))) {
+                Connection con = dataSources.get(shard).getConnection();
+                tx.put(shard, con);
+                con.setAutoCommit(false);
+            }
+            for (Long id : new Long[]{Math.min(fromId, toId), Math.max(fromId, toId)}) {
+                balances.put(id, lockBalance(tx.get(shardOfId(id)), id));
+            }
+
+            Connection fromCon = tx.get(shardOfId(fromId));
+            Connection toCon = tx.get(shardOfId(toId));
+            if (balances.get(fromId) < amount) {
+                throw new IllegalStateException("Insufficient funds");
+            }
+            addToBalance(fromCon, fromId, -amount);
+            addToBalance(toCon, toId, amount);
+
+            if (tx.size() == 1) {
+                fromCon.commit();
+                return;
+            }
+
+            Connection coordinator = tx.firstEntry().getValue();
+            Connection participant = tx.lastEntry().getValue();
+
+            // Phase 1: the participant votes yes and keeps its changes durable but invisible
+            prepare(participant, txName);
+            prepared = true;
+
+            // Commit point: coordinator update and decision record become visible together
+            try (PreparedStatement ps = coordinator.prepareStatement("insert into tx_decision (name) values (?)")) {
+                ps.setString(1, txName);
+                ps.executeUpdate();
+            }
+            try {
+                commitDecision(coordinator);
+            } catch (SQLException e) {
+                Boolean logged = decisionLogged(coordinator, txName);
+                if (logged == null) {
+                    // outcome unknown: leave both sides to recovery rather than guess
+                    throw holdInDoubt(tx, txName, true, e);
+                }
+                if (!logged) {
+                    throw e;
+                }
+            }
+            decided = true;
+
+            // Phase 2: the outcome is fixed, so only ever move forward
+            SQLException failed = commitParticipant(participant, txName);
+            if (failed != null) {
+                throw holdInDoubt(tx, txName, false, failed);
+            }
+            forgetDecision(coordinator, txName);
+        } catch (SQLException e) {
+            if (!decided) {
+                rollbackAll(tx, prepared, txName);
+            }
+            throw new UncategorizedSQLException("transfer", null, e);
+        } catch (TransferInDoubtException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            if (!decided) {
+                rollbackAll(tx, prepared, txName);
+            }
+            throw e;
+        } finally {
+            for (Connection con : tx.values()) {
+                try {
+                    con.close();
+                } catch (SQLException ignored) {
+                    // connection is returned to the pool; nothing left to undo
+                }
+            }
+        }
+    }
+
+    /**
+     * Settles cross-shard transfers left in doubt by {@link #transfer}: commits the prepared
+     * participant if the coordinator logged a decision, otherwise rolls it back.
+     * Returns the number still unresolved; those are retried on the next run.
+     */
+    @Scheduled(fixedDelayString = "${app.accounts.recovery-interval-ms}")
+    public int recoverInDoubt() {
+        for (Map.Entry<String, Pending> e : inDoubt.entrySet()) {
+            String txName = e.getKey();
+            Pending pending = e.getValue();
+            JdbcTemplate coordinator = shards.get(pending.coordinatorShard());
+            try {
+                boolean decided = coordinator.queryForObject(
+                        "select count(*) from tx_decision where name = ?", Integer.class, txName) > 0;
+                if (pending.session() == null) {
+                    resolvePrepared(shards.get(pending.participantShard()), txName, decided);
+                } else {
+                    execute(pending.session(), (decided ? "COMMIT" : "ROLLBACK") + " TRANSACTION " + txName);
+                    pending.session().close();
+                }
+                coordinator.update("delete from tx_decision where name = ?", txName);
+                inDoubt.remove(txName);
+            } catch (SQLException ex) {
+                System.err.println("[SHARD ERROR] transfer " + txName + " still in doubt: " + ex.getMessage());
+            } catch (RuntimeException ex) {
+                System.err.println("[SHARD ERROR] transfer " + txName + " still in doubt: " + ex.getMessage());
+            }
+        }
+        return inDoubt.size();
+    }
+
+    // No transfer is running yet, so anything prepared is left over from a previous run
+    private void recoverAtStartup() {
+        Set<String> decisions = new HashSet<>();
+        for (JdbcTemplate jdbc : shards) {
+            decisions.addAll(jdbc.queryForList("select name from tx_decision", String.class));
+        }
+        for (JdbcTemplate jdbc : shards) {
+            for (String name : jdbc.queryForList("select transaction_name from information_schema.in_doubt", String.class)) {
+                resolvePrepared(jdbc, name, decisions.contains(name));
+            }
+        }
+        // Only now: a crash above must still find every decision on the next start
+        for (JdbcTemplate jdbc : shards) {
+            jdbc.update("delete from tx_decision");
+        }
+    }
+
+    protected void resolvePrepared(JdbcTemplate shard, String txName, boolean commit) {
+        shard.execute((commit ? "COMMIT" : "ROLLBACK") + " TRANSACTION " + txName);
+    }
+
+    protected void prepare(Connection participant, String txName) throws SQLException {
+        execute(participant, "PREPARE COMMIT " + txName);
+    }
+
+    protected void commitDecision(Connection coordinator) throws SQLException {
+        coordinator.commit();
+    }
+
+    protected void commitPrepared(Connection participant, String txName) throws SQLException {
+        execute(participant, "COMMIT TRANSACTION " + txName);
+    }
+
+    // Returns null once committed, otherwise the last failure
+    private SQLException commitParticipant(Connection participant, String txName) {
+        SQLException last = null;
+        for (int attempt = 0; attempt < COMMIT_ATTEMPTS; attempt++) {
+            try {
+                commitPrepared(participant, txName);
+                return null;
+            } catch (SQLException e) {
+                last = e;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Hands a prepared transaction to recovery. A participant that only has to commit is evicted
+     * rather than returned, because the pool would roll it back; closing the session leaves the
+     * transaction in doubt. One whose outcome is unknown keeps its session for the rollback case.
+     */
+    private TransferInDoubtException holdInDoubt(TreeMap<Integer, Connection> tx, String txName,
+                                                 boolean outcomeUnknown, Throwable cause) {
+        int coordinatorShard = tx.firstKey();
+        int participantShard = tx.lastKey();
+        Connection session = tx.remove(participantShard);
+        if (outcomeUnknown) {
+            dataSources.get(coordinatorShard).evictConnection(tx.remove(coordinatorShard));
+        } else {
+            dataSources.get(participantShard).evictConnection(session);
+            session = null;
+        }
+        inDoubt.put(txName, new Pending(coordinatorShard, participantShard, session));
+        return new TransferInDoubtException(txName, cause);
+    }
+
+    // After a failed commit: true/false once known, null if even the lookup fails
+    private Boolean decisionLogged(Connection coordinator, String txName) {
+        try {
+            // whatever survives a rollback was committed
+            coordinator.rollback();
+            return lookupDecision(coordinator, txName);
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    protected boolean lookupDecision(Connection coordinator, String txName) throws SQLException {
+        try (PreparedStatement ps = coordinator.prepareStatement("select count(*) from tx_decision where name = ?")) {
+            ps.setString(1, txName);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getInt(1) > 0;
+            }
+        }
+    }
+
+    private void forgetDecision(Connection coordinator, String txName) {
+        try (PreparedStatement ps = coordinator.prepareStatement("delete from tx_decision where name = ?")) {
+            ps.setString(1, txName);
+            ps.executeUpdate();
+            coordinator.commit();
+        } catch (SQLException e) {
+            // a stale decision row is harmless; startup recovery clears it
+            System.err.println("[SHARD ERROR] could not clear decision " + txName + ": " + e.getMessage());
+        }
+    }
+
+    private double lockBalance(Connection con, Long id) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement("select balance from account where id = ? for update")) {
+            ps.setLong(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    throw new NoSuchElementException("Account not found");
+                }
+                return rs.getDouble(1);
+            }
+        }
+    }
+
+    private void addToBalance(Connection con, Long id, double delta) throws SQLException {
+        try (PreparedStatement ps = con.prepareStatement("update account set balance = balance + ? where id = ?")) {
+            ps.setDouble(1, delta);
+            ps.setLong(2, id);
+            ps.executeUpdate();
+        }
+    }
+
+    private void execute(Connection con, String sql) throws SQLException {
+        try (Statement st = con.createStatement()) {
+            st.execute(sql);
+        }
+    }
+
+    private void rollbackAll(TreeMap<Integer, Connection> tx, boolean prepared, String txName) {
+        for (Connection con : tx.values()) {
+            try {
+                if (prepared && con == tx.lastEntry().getValue()) {
+                    execute(con, "ROLLBACK TRANSACTION " + txName);
+                }
+                con.rollback();
+            } catch (SQLException e) {
+                System.err.println("[SHARD ERROR] rollback of " + txName + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        inDoubt.clear();
+        dataSources.forEach(HikariDataSource::close);
+    }
+}
@@ -0,0 +1,20 @@
+package edu.nu.owaspapivulnlab.repo;
+
+/**
+ * A cross-shard transfer could not be settled on every shard before returning. Its outcome is
+ * fixed by the coordinator's decision log and applied by {@link ShardedAccountStore#recoverInDoubt()}
+ * or by recovery at startup; callers must not retry the transfer.
+ */
+public class TransferInDoubtException extends RuntimeException {
+
+    private final String transactionName;
+
+    public TransferInDoubtException(String transactionName, Throwable cause) {
+        super("Transfer " + transactionName + " is in doubt and will be settled by recovery", cause);
+        this.transactionName = transactionName;
+    }
+
+    public String getTransactionName() {
+        return transactionName;
+    }
+}
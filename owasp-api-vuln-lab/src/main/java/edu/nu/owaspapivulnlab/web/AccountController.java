@@ -5,8 +5,9 @@ import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 import edu.nu.owaspapivulnlab.model.Account;
 import edu.nu.owaspapivulnlab.model.AppUser;
-import edu.nu.owaspapivulnlab.repo.AccountRepository;
+import edu.nu.owaspapivulnlab.repo.AccountStore;
 import edu.nu.owaspapivulnlab.repo.AppUserRepository;
+import edu.nu.owaspapivulnlab.repo.TransferInDoubtException;
 
 import java.util.Collections;
 import java.util.HashMap;
@@ -16,10 +17,10 @@ import java.util.Map;
 @RequestMapping("/api/accounts")
 public class AccountController {
 
-    private final AccountRepository accounts;
+    private final AccountStore accounts;
     private final AppUserRepository users;
 
-    public AccountController(AccountRepository accounts, AppUserRepository users) {
+    public AccountController(AccountStore accounts, AppUserRepository users) {
         this.accounts = accounts;
         this.users = users;
     }
@@ -47,6 +48,7 @@ public class AccountController {
 @PostMapping("/{id}/transfer")
 public ResponseEntity<?> transfer(@PathVariable Long id,
                                   @RequestParam Double amount,
+                                  @RequestParam(required = false) Long to,
                                   Authentication auth) {
 
     // ✅ [API4 FIX] Input validation to prevent resource exhaustion
@@ -72,8 +74,24 @@ public ResponseEntity<?> transfer(@PathVariable Long id,
     }
 
     // Process transfer safely
-    a.setBalance(a.getBalance() - amount);
-    accounts.save(a);
+    if (to == null) {
+        a.setBalance(a.getBalance() - amount);
+        accounts.save(a);
+    } else {
+        if (to.equals(id) || accounts.findById(to).isEmpty()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Invalid destination account"));
+        }
+        // Store re-checks the balance under lock; may span shards in sharded mode
+        try {
+            accounts.transfer(id, to, amount);
+        } catch (IllegalStateException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "Insufficient funds"));
+        } catch (TransferInDoubtException e) {
+            // Background recovery settles the transfer; the client must not retry
+            return ResponseEntity.accepted().body(Map.of("status", "pending"));
+        }
+        a = accounts.findById(id).orElseThrow(() -> new RuntimeException("Account not found"));
+    }
 
     Map<String, Object> response = new HashMap<>();
     response.put("status", "ok");
@@ -2,6 +2,7 @@ package edu.nu.owaspapivulnlab.web;
 
 import jakarta.validation.Valid;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 import edu.nu.owaspapivulnlab.model.AppUser;
 import edu.nu.owaspapivulnlab.repo.AppUserRepository;
@@ -89,7 +90,7 @@ public class UserController {
     }
 
     List<Map<String, Object>> safeUsers = users.findAll().stream()
-            .map(u -> Map.of("id", u.getId(), "username", u.getUsername(), "email", u.getEmail()))
+            .map(u -> Map.<String, Object>of("id", u.getId(), "username", u.getUsername(), "email", u.getEmail()))
             .toList();
 
     return ResponseEntity.ok(safeUsers);
@@ -0,0 +1,110 @@
+package edu.nu.owaspapivulnlab;
+
+import edu.nu.owaspapivulnlab.config.SecurityConfig;
+import edu.nu.owaspapivulnlab.model.Account;
+import edu.nu.owaspapivulnlab.model.AppUser;
+import edu.nu.owaspapivulnlab.repo.AccountStore;
+import edu.nu.owaspapivulnlab.repo.AppUserRepository;
+import edu.nu.owaspapivulnlab.repo.TransferInDoubtException;
+import edu.nu.owaspapivulnlab.service.JwtService;
+import edu.nu.owaspapivulnlab.web.AccountController;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.test.context.TestPropertySource;
+import org.springframework.test.web.servlet.MockMvc;
+
+import java.util.Map;
+import java.util.Optional;
+
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+@WebMvcTest(AccountController.class)
+@Import({SecurityConfig.class, JwtService.class})
+// the shipped secret is too short for jjwt to sign with
+@TestPropertySource(properties = "app.jwt.secret=account-controller-tests-signing-key-0123456789")
+class AccountControllerTests {
+
+    @Autowired MockMvc mvc;
+    @Autowired JwtService jwt;
+
+    @MockBean AccountStore accounts;
+    @MockBean AppUserRepository users;
+
+    String token;
+
+    @BeforeEach
+    void aliceOwnsAccountOne() {
+        when(users.findByUsername("alice")).thenReturn(Optional.of(AppUser.builder().id(1L).username("alice").build()));
+        when(accounts.findById(1L)).thenReturn(Optional.of(account(1L, 1L, 100.0)));
+        when(accounts.findById(2L)).thenReturn(Optional.of(account(2L, 2L, 0.0)));
+        token = jwt.issue("alice", Map.of("role", "USER"));
+    }
+
+    static Account account(Long id, Long owner, double balance) {
+        return Account.builder().id(id).ownerUserId(owner).iban("IBAN-" + id).balance(balance).build();
+    }
+
+    @Test
+    void transfer_to_another_account_goes_through_the_store() throws Exception {
+        when(accounts.findById(1L)).thenReturn(Optional.of(account(1L, 1L, 100.0)), Optional.of(account(1L, 1L, 70.0)));
+
+        mvc.perform(post("/api/accounts/1/transfer").param("amount", "30").param("to", "2")
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.status").value("ok"))
+                .andExpect(jsonPath("$.remaining").value(70.0));
+        verify(accounts).transfer(1L, 2L, 30.0);
+        verify(accounts, never()).save(any());
+    }
+
+    @Test
+    void transfer_without_destination_only_debits() throws Exception {
+        mvc.perform(post("/api/accounts/1/transfer").param("amount", "30")
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.remaining").value(70.0));
+        verify(accounts).save(argThat(a -> a.getBalance() == 70.0));
+        verify(accounts, never()).transfer(any(), any(), anyDouble());
+    }
+
+    @Test
+    void insufficient_funds_found_by_the_store_is_a_bad_request() throws Exception {
+        // balance was enough when the controller read it, but not once the store locked the row
+        doThrow(new IllegalStateException("Insufficient funds")).when(accounts).transfer(1L, 2L, 30.0);
+
+        mvc.perform(post("/api/accounts/1/transfer").param("amount", "30").param("to", "2")
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Insufficient funds"));
+    }
+
+    @Test
+    void in_doubt_transfer_is_accepted_as_pending() throws Exception {
+        doThrow(new TransferInDoubtException("TX_1", null)).when(accounts).transfer(1L, 2L, 30.0);
+
+        mvc.perform(post("/api/accounts/1/transfer").param("amount", "30").param("to", "2")
+                        .header("Authorization", "Bearer " + token))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.status").value("pending"));
+    }
+
+    @Test
+    void unknown_or_same_destination_is_rejected_before_the_store() throws Exception {
+        when(accounts.findById(9L)).thenReturn(Optional.empty());
+
+        for (String to : new String[]{"1", "9"}) {
+            mvc.perform(post("/api/accounts/1/transfer").param("amount", "30").param("to", to)
+                            .header("Authorization", "Bearer " + token))
+                    .andExpect(status().isBadRequest())
+                    .andExpect(jsonPath("$.error").value("Invalid destination account"));
+        }
+        verify(accounts, never()).transfer(any(), any(), anyDouble());
+    }
+}
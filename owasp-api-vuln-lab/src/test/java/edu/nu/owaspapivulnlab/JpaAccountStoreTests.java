@@ -0,0 +1,69 @@
+package edu.nu.owaspapivulnlab;
+
+import edu.nu.owaspapivulnlab.model.Account;
+import edu.nu.owaspapivulnlab.repo.AccountRepository;
+import edu.nu.owaspapivulnlab.repo.JpaAccountStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@DataJpaTest
+@Import(JpaAccountStore.class)
+// each step commits on its own, like separate HTTP requests
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+class JpaAccountStoreTests {
+
+    @Autowired JpaAccountStore store;
+    @Autowired AccountRepository accounts;
+    @Autowired PlatformTransactionManager txManager;
+
+    @AfterEach
+    void clean() {
+        accounts.deleteAll();
+    }
+
+    Account open(long owner, double balance) {
+        return accounts.save(Account.builder().ownerUserId(owner).iban("PK00-" + owner).balance(balance).build());
+    }
+
+    @Test
+    void transfer_moves_money_and_rejects_overdraft() {
+        Account a = open(1, 100.0);
+        Account b = open(2, 0.0);
+
+        store.transfer(a.getId(), b.getId(), 40.0);
+        assertThrows(IllegalStateException.class, () -> store.transfer(a.getId(), b.getId(), 500.0));
+
+        assertEquals(60.0, accounts.findById(a.getId()).orElseThrow().getBalance());
+        assertEquals(40.0, accounts.findById(b.getId()).orElseThrow().getBalance());
+    }
+
+    @Test
+    void transfer_rereads_balance_already_loaded_in_the_persistence_context() {
+        Account a = open(1, 100.0);
+        Account b = open(2, 0.0);
+        TransactionTemplate tx = new TransactionTemplate(txManager);
+
+        // one persistence context spans the whole "request", as with open-in-view
+        tx.executeWithoutResult(status -> {
+            assertEquals(100.0, store.findById(a.getId()).orElseThrow().getBalance());
+            // another request moves 30 and commits while this one still holds A = 100
+            CompletableFuture.runAsync(() -> tx.executeWithoutResult(
+                    other -> store.transfer(a.getId(), b.getId(), 30.0))).join();
+            store.transfer(a.getId(), b.getId(), 10.0);
+        });
+
+        assertEquals(60.0, accounts.findById(a.getId()).orElseThrow().getBalance());
+        assertEquals(40.0, accounts.findById(b.getId()).orElseThrow().getBalance());
+    }
+}
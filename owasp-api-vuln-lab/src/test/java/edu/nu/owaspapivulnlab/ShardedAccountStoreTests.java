@@ -0,0 +1,379 @@
+package edu.nu.owaspapivulnlab;
+
+import edu.nu.owaspapivulnlab.model.Account;
+import edu.nu.owaspapivulnlab.repo.AccountRepository;
+import edu.nu.owaspapivulnlab.repo.AccountStore;
+import edu.nu.owaspapivulnlab.repo.JpaAccountStore;
+import edu.nu.owaspapivulnlab.repo.ShardedAccountStore;
+import edu.nu.owaspapivulnlab.repo.TransferInDoubtException;
+import jakarta.persistence.EntityManager;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.boot.context.annotation.UserConfigurations;
+import org.springframework.boot.test.context.runner.ApplicationContextRunner;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedAccountStoreTests {
+
+    final List<ShardedAccountStore> stores = new ArrayList<>();
+
+    @AfterEach
+    void closeStores() {
+        stores.forEach(ShardedAccountStore::destroy);
+    }
+
+    String url() {
+        return "jdbc:h2:mem:shardtest-" + UUID.randomUUID() + "-%d;DB_CLOSE_DELAY=-1";
+    }
+
+    ShardedAccountStore store(int shards) {
+        return track(new ShardedAccountStore(shards, url()));
+    }
+
+    ShardedAccountStore track(ShardedAccountStore s) {
+        stores.add(s);
+        return s;
+    }
+
+    Account open(ShardedAccountStore s, long owner, double balance) {
+        return s.save(Account.builder().ownerUserId(owner).iban("PK00-" + owner).balance(balance).build());
+    }
+
+    double balance(ShardedAccountStore s, Account a) {
+        return s.findById(a.getId()).orElseThrow().getBalance();
+    }
+
+    /** Store whose 2PC steps can be made to fail on demand. */
+    static class FailingStore extends ShardedAccountStore {
+        // read from the constructor, so it cannot be an instance field
+        static volatile String failResolving;
+
+        boolean failPrepare;
+        boolean failDecision;
+        boolean commitThenFailDecision;
+        boolean failLookup;
+        int participantCommitFailures;
+
+        FailingStore(String url) {
+            this(2, url);
+        }
+
+        FailingStore(int shards, String url) {
+            super(shards, url);
+        }
+
+        @Override
+        protected void resolvePrepared(JdbcTemplate shard, String txName, boolean commit) {
+            if (txName.equals(failResolving)) {
+                throw new IllegalStateException("injected crash during recovery");
+            }
+            super.resolvePrepared(shard, txName, commit);
+        }
+
+        @Override
+        protected boolean lookupDecision(Connection coordinator, String txName) throws SQLException {
+            if (failLookup) {
+                throw new SQLException("injected lookup failure");
+            }
+            return super.lookupDecision(coordinator, txName);
+        }
+
+        @Override
+        protected void prepare(Connection participant, String txName) throws SQLException {
+            if (failPrepare) {
+                throw new SQLException("injected prepare failure");
+            }
+            super.prepare(participant, txName);
+        }
+
+        @Override
+        protected void commitDecision(Connection coordinator) throws SQLException {
+            if (failDecision) {
+                throw new SQLException("injected decision failure");
+            }
+            super.commitDecision(coordinator);
+            if (commitThenFailDecision) {
+                throw new SQLException("injected failure after the decision committed");
+            }
+        }
+
+        @Override
+        protected void commitPrepared(Connection participant, String txName) throws SQLException {
+            if (participantCommitFailures > 0) {
+                participantCommitFailures--;
+                throw new SQLException("injected phase 2 failure");
+            }
+            super.commitPrepared(participant, txName);
+        }
+    }
+
+    @Test
+    void sharded_property_selects_the_account_store() {
+        ApplicationContextRunner runner = new ApplicationContextRunner()
+                .withBean(AccountRepository.class, () -> Mockito.mock(AccountRepository.class))
+                .withBean(EntityManager.class, () -> Mockito.mock(EntityManager.class))
+                .withConfiguration(UserConfigurations.of(JpaAccountStore.class, ShardedAccountStore.class))
+                .withPropertyValues("app.accounts.shard-count=2", "app.accounts.shard-url=" + url());
+
+        runner.run(ctx -> assertInstanceOf(JpaAccountStore.class, ctx.getBean(AccountStore.class)));
+        runner.withPropertyValues("app.accounts.sharded=true")
+                .run(ctx -> assertInstanceOf(ShardedAccountStore.class, ctx.getBean(AccountStore.class)));
+    }
+
+    @Test
+    void accounts_are_routed_by_owner_and_found_by_id() {
+        ShardedAccountStore s = store(4);
+        for (long owner = 1; owner <= 8; owner++) {
+            Account a = open(s, owner, 100.0);
+            // ids handed out by a shard map back to the owner's shard
+            assertEquals(owner % 4, (a.getId() - 1) % 4);
+            assertEquals(owner, s.findById(a.getId()).orElseThrow().getOwnerUserId());
+            assertEquals(1, s.findByOwnerUserId(owner).size());
+        }
+    }
+
+    @Test
+    void save_rejects_missing_owner_and_unknown_id() {
+        ShardedAccountStore s = store(2);
+        assertThrows(IllegalArgumentException.class,
+                () -> s.save(Account.builder().iban("PK00-NONE").balance(1.0).build()));
+        assertThrows(NoSuchElementException.class,
+                () -> s.save(Account.builder().id(41L).ownerUserId(2L).iban("PK00-GHOST").balance(1.0).build()));
+    }
+
+    @Test
+    void cross_shard_transfer_commits_on_both_shards() {
+        ShardedAccountStore s = store(2);
+        Account from = open(s, 1, 100.0);
+        Account to = open(s, 2, 0.0);
+
+        s.transfer(from.getId(), to.getId(), 40.0);
+
+        assertEquals(60.0, balance(s, from));
+        assertEquals(40.0, balance(s, to));
+    }
+
+    @Test
+    void failed_cross_shard_transfer_changes_nothing() {
+        ShardedAccountStore s = store(2);
+        Account from = open(s, 1, 10.0);
+        Account to = open(s, 2, 0.0);
+
+        assertThrows(IllegalStateException.class, () -> s.transfer(from.getId(), to.getId(), 50.0));
+
+        assertEquals(10.0, balance(s, from));
+        assertEquals(0.0, balance(s, to));
+    }
+
+    @Test
+    void failure_before_the_decision_rolls_back_both_shards() {
+        FailingStore s = (FailingStore) track(new FailingStore(url()));
+        Account coordinator = open(s, 2, 100.0);
+        Account participant = open(s, 1, 0.0);
+
+        s.failPrepare = true;
+        assertThrows(RuntimeException.class, () -> s.transfer(coordinator.getId(), participant.getId(), 30.0));
+        s.failPrepare = false;
+        s.failDecision = true;
+        assertThrows(RuntimeException.class, () -> s.transfer(coordinator.getId(), participant.getId(), 30.0));
+        s.failDecision = false;
+
+        assertEquals(100.0, balance(s, coordinator));
+        assertEquals(0.0, balance(s, participant));
+        // the prepared participant was rolled back, so its row is free again
+        s.transfer(coordinator.getId(), participant.getId(), 30.0);
+        assertEquals(30.0, balance(s, participant));
+    }
+
+    @Test
+    void transient_phase_2_failure_is_retried_not_rolled_back() {
+        FailingStore s = (FailingStore) track(new FailingStore(url()));
+        Account coordinator = open(s, 2, 100.0);
+        Account participant = open(s, 1, 0.0);
+
+        s.participantCommitFailures = 1;
+        s.transfer(coordinator.getId(), participant.getId(), 30.0);
+
+        assertEquals(70.0, balance(s, coordinator));
+        assertEquals(30.0, balance(s, participant));
+    }
+
+    @Test
+    void phase_2_failure_leaves_transfer_in_doubt_until_recovered() {
+        FailingStore s = (FailingStore) track(new FailingStore(url()));
+        Account coordinator = open(s, 2, 100.0);
+        Account participant = open(s, 1, 0.0);
+
+        s.participantCommitFailures = Integer.MAX_VALUE;
+        assertThrows(TransferInDoubtException.class, () -> s.transfer(coordinator.getId(), participant.getId(), 30.0));
+
+        // decided: the debit stays, the credit is prepared but not yet visible
+        assertEquals(70.0, balance(s, coordinator));
+        assertEquals(0.0, balance(s, participant));
+
+        s.participantCommitFailures = 0;
+        assertEquals(0, s.recoverInDoubt());
+        assertEquals(70.0, balance(s, coordinator));
+        assertEquals(30.0, balance(s, participant));
+    }
+
+    @Test
+    void restart_commits_decided_in_doubt_transfers() {
+        String url = url();
+        FailingStore crashed = new FailingStore(url);
+        Account coordinator = open(crashed, 2, 100.0);
+        Account participant = open(crashed, 1, 0.0);
+        crashed.participantCommitFailures = Integer.MAX_VALUE;
+        assertThrows(TransferInDoubtException.class,
+                () -> crashed.transfer(coordinator.getId(), participant.getId(), 30.0));
+        // drop the pools without resolving anything, as a crash would
+        crashed.destroy();
+
+        ShardedAccountStore restarted = track(new ShardedAccountStore(2, url));
+
+        assertEquals(70.0, balance(restarted, coordinator));
+        assertEquals(30.0, balance(restarted, participant));
+    }
+
+    @Test
+    void in_doubt_transfers_do_not_hold_pool_connections() {
+        FailingStore s = (FailingStore) track(new FailingStore(url()));
+        s.participantCommitFailures = Integer.MAX_VALUE;
+        List<Account[]> pairs = new ArrayList<>();
+        // more in-doubt transfers than the participant shard's pool has connections
+        for (long owner = 2; owner <= 24; owner += 2) {
+            Account coordinator = open(s, owner, 100.0);
+            Account participant = open(s, owner + 1, 0.0);
+            assertThrows(TransferInDoubtException.class, () -> s.transfer(coordinator.getId(), participant.getId(), 10.0));
+            pairs.add(new Account[]{coordinator, participant});
+        }
+        s.participantCommitFailures = 0;
+
+        Account from = open(s, 100, 50.0);
+        Account to = open(s, 101, 0.0);
+        s.transfer(from.getId(), to.getId(), 5.0);
+        assertEquals(5.0, balance(s, to));
+
+        assertEquals(0, s.recoverInDoubt());
+        for (Account[] pair : pairs) {
+            assertEquals(90.0, balance(s, pair[0]));
+            assertEquals(10.0, balance(s, pair[1]));
+        }
+    }
+
+    @Test
+    void unknown_decision_that_committed_is_completed_by_recovery() {
+        FailingStore s = (FailingStore) track(new FailingStore(url()));
+        Account coordinator = open(s, 2, 100.0);
+        Account participant = open(s, 1, 0.0);
+
+        s.commitThenFailDecision = true;
+        s.failLookup = true;
+        assertThrows(TransferInDoubtException.class, () -> s.transfer(coordinator.getId(), participant.getId(), 30.0));
+
+        // the participant was not rolled back, only parked until recovery reads the decision
+        assertEquals(70.0, balance(s, coordinator));
+        assertEquals(0.0, balance(s, participant));
+        assertEquals(0, s.recoverInDoubt());
+        assertEquals(30.0, balance(s, participant));
+    }
+
+    @Test
+    void unknown_decision_that_did_not_commit_is_rolled_back_by_recovery() {
+        FailingStore s = (FailingStore) track(new FailingStore(url()));
+        Account coordinator = open(s, 2, 100.0);
+        Account participant = open(s, 1, 0.0);
+
+        s.failDecision = true;
+        s.failLookup = true;
+        assertThrows(TransferInDoubtException.class, () -> s.transfer(coordinator.getId(), participant.getId(), 30.0));
+        s.failDecision = false;
+        s.failLookup = false;
+
+        assertEquals(0, s.recoverInDoubt());
+        assertEquals(100.0, balance(s, coordinator));
+        assertEquals(0.0, balance(s, participant));
+        // both rows were released
+        s.transfer(coordinator.getId(), participant.getId(), 30.0);
+        assertEquals(30.0, balance(s, participant));
+    }
+
+    @Test
+    void crash_during_startup_recovery_keeps_decisions_for_the_next_start() {
+        String url = url();
+        FailingStore crashed = new FailingStore(3, url);
+        // shard 0 coordinates both transfers, shards 1 and 2 are the participants
+        Account coordinator = open(crashed, 3, 100.0);
+        Account first = open(crashed, 1, 0.0);
+        Account second = open(crashed, 2, 0.0);
+        crashed.participantCommitFailures = Integer.MAX_VALUE;
+        String firstTx = assertThrows(TransferInDoubtException.class,
+                () -> crashed.transfer(coordinator.getId(), first.getId(), 10.0)).getTransactionName();
+        String secondTx = assertThrows(TransferInDoubtException.class,
+                () -> crashed.transfer(coordinator.getId(), second.getId(), 20.0)).getTransactionName();
+        crashed.destroy();
+
+        FailingStore.failResolving = secondTx;
+        try {
+            assertThrows(IllegalStateException.class, () -> new FailingStore(3, url));
+        } finally {
+            FailingStore.failResolving = null;
+        }
+        ShardedAccountStore restarted = track(new ShardedAccountStore(3, url));
+
+        assertNotEquals(firstTx, secondTx);
+        assertEquals(70.0, balance(restarted, coordinator));
+        assertEquals(10.0, balance(restarted, first));
+        assertEquals(20.0, balance(restarted, second));
+    }
+
+    @Test
+    void concurrent_transfers_conserve_money() throws Exception {
+        ShardedAccountStore s = store(2);
+        List<Long> ids = new ArrayList<>();
+        for (long owner = 1; owner <= 8; owner++) {
+            ids.add(open(s, owner, 100.0).getId());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> done = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            done.add(pool.submit(() -> {
+                ThreadLocalRandom r = ThreadLocalRandom.current();
+                Long from = ids.get(r.nextInt(ids.size()));
+                Long to = ids.get(r.nextInt(ids.size()));
+                if (!from.equals(to)) {
+                    try {
+                        s.transfer(from, to, 5.0);
+                    } catch (IllegalStateException ignored) {
+                        // drained account, nothing moved
+                    }
+                }
+            }));
+        }
+        for (Future<?> f : done) {
+            f.get();
+        }
+        pool.shutdown();
+
+        double total = 0;
+        for (Long id : ids) {
+            total += s.findById(id).orElseThrow().getBalance();
+        }
+        assertEquals(800.0, total, 0.0001);
+    }
+}
@@ -0,0 +1,137 @@
+package edu.nu.owaspapivulnlab;
+
+import edu.nu.owaspapivulnlab.model.Account;
+import edu.nu.owaspapivulnlab.repo.ShardedAccountStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transfer throughput of {@link ShardedAccountStore} as shards are added.
+ * Not part of the test suite; run with
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=edu.nu.owaspapivulnlab.ShardedTransferBenchmark}.
+ *
+ * Each shard gets its own accounts and {@code THREADS_PER_SHARD} worker threads, so the offered
+ * load grows with the shard count. A worker picks a random source account and, with a fixed
+ * probability, a destination on a different shard; otherwise the destination is on the same
+ * shard. Keeping that ratio fixed means every row measures the same mix of local and 2PC work.
+ *
+ * Every row is compared with a control: the same number of threads against a single shard.
+ * Sharded and control runs alternate for {@code TRIALS} rounds, so drift in the machine hits
+ * both alike, and each is reported as median and min-max transfers per second. The ratio of
+ * the two medians is the effect of sharding alone; a ratio inside the spread is no effect.
+ */
+public class ShardedTransferBenchmark {
+
+    static final int[] SHARD_COUNTS = {1, 2, 4, 8};
+    static final double[] CROSS_SHARD_RATIOS = {0.0, 0.2};
+    static final int THREADS_PER_SHARD = 2;
+    static final int ACCOUNTS_PER_SHARD = 64;
+    static final long WARMUP_MS = 1_000;
+    static final long MEASURE_MS = 4_000;
+    static final int TRIALS = 5;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("cpus=" + Runtime.getRuntime().availableProcessors()
+                + " threads/shard=" + THREADS_PER_SHARD + " accounts/shard=" + ACCOUNTS_PER_SHARD
+                + " measure=" + MEASURE_MS + "ms trials=" + TRIALS);
+        System.out.println("cross-ratio shards threads  sharded/s median (min-max)  control/s median (min-max)  sharded/control");
+        // throwaway runs so the JIT has compiled both transfer paths before anything is measured
+        run(2, 0.2, 2 * THREADS_PER_SHARD);
+        run(1, 0.0, 2 * THREADS_PER_SHARD);
+        for (double ratio : CROSS_SHARD_RATIOS) {
+            for (int shards : SHARD_COUNTS) {
+                if (shards == 1 && ratio > 0) {
+                    continue;
+                }
+                int threads = shards * THREADS_PER_SHARD;
+                double[] sharded = new double[TRIALS];
+                double[] control = new double[TRIALS];
+                for (int trial = 0; trial < TRIALS; trial++) {
+                    sharded[trial] = run(shards, ratio, threads) * 1000.0 / MEASURE_MS;
+                    // same offered load on one database, to separate the effect of sharding from more threads
+                    control[trial] = shards == 1 ? sharded[trial] : run(1, 0.0, threads) * 1000.0 / MEASURE_MS;
+                }
+                System.out.printf("%11.2f %6d %7d  %26s  %26s  %15.2f%n", ratio, shards, threads,
+                        summary(sharded), summary(control), median(sharded) / median(control));
+            }
+        }
+    }
+
+    static String summary(double[] samples) {
+        double[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return String.format("%.0f (%.0f-%.0f)", median(sorted), sorted[0], sorted[sorted.length - 1]);
+    }
+
+    static double median(double[] samples) {
+        double[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        int mid = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[mid] : (sorted[mid - 1] + sorted[mid]) / 2;
+    }
+
+    static long run(int shards, double crossRatio, int threads) throws Exception {
+        ShardedAccountStore store = new ShardedAccountStore(shards,
+                "jdbc:h2:mem:bench-" + UUID.randomUUID() + "-%d;DB_CLOSE_DELAY=-1");
+        try {
+            List<List<Long>> byShard = new ArrayList<>();
+            for (int shard = 0; shard < shards; shard++) {
+                List<Long> ids = new ArrayList<>();
+                for (int k = 1; k <= ACCOUNTS_PER_SHARD; k++) {
+                    // owner id chosen so that ownerUserId mod shards == shard
+                    long owner = shard + (long) k * shards;
+                    ids.add(store.save(Account.builder().ownerUserId(owner).iban("BENCH-" + owner)
+                            .balance(1_000_000.0).build()).getId());
+                }
+                byShard.add(ids);
+            }
+
+            LongAdder transfers = new LongAdder();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> workers = new ArrayList<>();
+            long start = System.currentTimeMillis();
+            long measureFrom = start + WARMUP_MS;
+            long stopAt = measureFrom + MEASURE_MS;
+            for (int t = 0; t < threads; t++) {
+                int home = t % shards;
+                workers.add(pool.submit(() -> {
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    List<Long> local = byShard.get(home);
+                    long now;
+                    while ((now = System.currentTimeMillis()) < stopAt) {
+                        Long from = local.get(r.nextInt(local.size()));
+                        boolean cross = shards > 1 && r.nextDouble() < crossRatio;
+                        List<Long> targets = cross
+                                ? byShard.get((home + 1 + r.nextInt(shards - 1)) % shards)
+                                : local;
+                        Long to = targets.get(r.nextInt(targets.size()));
+                        if (from.equals(to)) {
+                            continue;
+                        }
+                        store.transfer(from, to, 1.0);
+                        if (now >= measureFrom) {
+                            transfers.increment();
+                        }
+                    }
+                }));
+            }
+            pool.shutdown();
+            for (Future<?> worker : workers) {
+                // surfaces any transfer failure instead of silently losing a worker
+                worker.get(WARMUP_MS + MEASURE_MS + 60_000, TimeUnit.MILLISECONDS);
+            }
+            return transfers.sum();
+        } finally {
+            store.destroy();
+        }
+    }
+}